@@ -0,0 +1,194 @@
+package blabber;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Drives OpenAI batches through their lifecycle: uploads their input files, creates them, polls them with an
+ * exponential backoff, and downloads and processes their output and error files as soon as they complete.
+ * Every step is recorded in a state file, so that an interrupted run resumes where it stopped.
+ */
+class BatchManager {
+	private static final Set<String> TERMINAL_STATUSES = Set.of("completed", "failed", "expired", "cancelled");
+	private static final Duration MAX_POLL_INTERVAL = Duration.ofMinutes(10);
+	private static final int MAX_FAILURES = 5;
+
+	private final OpenAiBatches openAiBatches;
+	private final Path stateFile;
+	private final Path directory;
+	private final Processor processor;
+	private final JSONArray batches;
+
+	private static final Logger logger = LogManager.getLogger(BatchManager.class);
+
+	/**
+	 * Processes the output file of a batch; a batch is recorded as done only once it has been processed
+	 */
+	@FunctionalInterface
+	interface Processor {
+		void process(Path outputFile) throws IOException;
+	}
+
+	/**
+	 * Manages batches whose input and output files live in {@code directory}; {@code processor} is handed the name
+	 * of each downloaded output file
+	 */
+	BatchManager(OpenAiBatches openAiBatches, Path stateFile, Path directory, Processor processor)
+		throws IOException {
+		this.openAiBatches = openAiBatches;
+		this.stateFile = stateFile;
+		this.directory = directory;
+		this.processor = processor;
+		this.batches = stateFile.toFile().exists()
+			? new JSONObject(Files.readString(stateFile)).getJSONArray("batches")
+			: new JSONArray();
+	}
+
+	/**
+	 * Whether batches from a previous run are still in flight or have not been processed
+	 */
+	synchronized boolean hasPending() {
+		return !pending().isEmpty();
+	}
+
+	/**
+	 * Registers new batch input files, to be submitted by the next {@link #run}
+	 */
+	synchronized void add(List<Path> inputs) throws IOException {
+		for (var input : inputs) {
+			var batch = new JSONObject();
+			batch.put("input", input.getFileName().toString());
+			batches.put(batch);
+		}
+		save();
+	}
+
+	/**
+	 * Drives all pending batches until they are processed, polling up to {@code threads} of them at once
+	 */
+	void run(int threads, Duration pollInterval) throws InterruptedException {
+		var pending = pending();
+		var latch = new CountDownLatch(pending.size());
+		var scheduler = Executors.newScheduledThreadPool(threads);
+
+		logger.info("Managing {} batches", pending.size());
+		pending.forEach(batch -> scheduler.execute(() -> step(scheduler, batch, pollInterval, 0, latch)));
+
+		latch.await();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Advances {@code batch} as far as possible in its lifecycle, then schedules its next poll
+	 */
+	private void step(ScheduledExecutorService scheduler, JSONObject batch, Duration delay, int failures,
+	                  CountDownLatch latch) {
+		try {
+			if (!batch.has("fileId")) {
+				var fileId = openAiBatches.upload(directory.resolve(batch.getString("input")));
+				update(batch, "fileId", fileId);
+				logger.info("Uploaded {} as {}", batch.getString("input"), fileId);
+			}
+
+			if (!batch.has("batchId")) {
+				var batchId = openAiBatches.createBatch(batch.getString("fileId"));
+				update(batch, "batchId", batchId);
+				logger.info("Created batch {} for {}", batchId, batch.getString("input"));
+			}
+
+			var batchId = batch.getString("batchId");
+			var remote = openAiBatches.retrieveBatch(batchId);
+			var status = remote.getString("status");
+			if (!status.equals(batch.optString("status"))) {
+				update(batch, "status", status);
+				logger.info("Batch {} is {} {}", batchId, status, remote.optString("request_counts", ""));
+			}
+
+			if (!TERMINAL_STATUSES.contains(status)) {
+				var next = delay.multipliedBy(2).compareTo(MAX_POLL_INTERVAL) < 0
+					? delay.multipliedBy(2)
+					: MAX_POLL_INTERVAL;
+				scheduler.schedule(() -> step(scheduler, batch, next, 0, latch), delay.toMillis(), TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			finish(batch, remote);
+			latch.countDown();
+		} catch (IOException | RuntimeException e) {
+			// Network errors and rate limits are transient, and so may be processing errors, e.g., on a truncated
+			// download; the batch stays pending in the state file if they persist
+			logger.error("Batch {} (attempt {}): {}", batch.getString("input"), failures + 1, e);
+			if (failures + 1 < MAX_FAILURES) {
+				scheduler.schedule(() -> step(scheduler, batch, delay, failures + 1, latch), delay.toMillis(),
+					TimeUnit.MILLISECONDS);
+			} else {
+				latch.countDown();
+			}
+		} catch (InterruptedException e) {
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * Downloads the output and error files of a terminated batch, if any, and processes its output
+	 */
+	private void finish(JSONObject batch, JSONObject remote) throws IOException, InterruptedException {
+		var batchId = batch.getString("batchId");
+
+		var errorFileId = remote.optString("error_file_id", null);
+		if (errorFileId != null) {
+			var errorFile = Path.of("%s_errors.jsonl".formatted(batchId));
+			openAiBatches.download(errorFileId, directory.resolve(errorFile));
+			update(batch, "errors", errorFile.toString());
+			logger.warn("Batch {}: {} failed requests, see {}", batchId,
+				Files.readAllLines(directory.resolve(errorFile)).size(), directory.resolve(errorFile));
+		}
+
+		var outputFileId = remote.optString("output_file_id", null);
+		if (outputFileId != null) {
+			var outputFile = Path.of("%s_output.jsonl".formatted(batchId));
+			openAiBatches.download(outputFileId, directory.resolve(outputFile));
+			update(batch, "output", outputFile.toString());
+
+			synchronized (processor) {
+				processor.process(outputFile);
+			}
+		} else if (remote.has("errors")) {
+			logger.error("Batch {} {}: {}", batchId, remote.getString("status"), remote.get("errors"));
+		}
+
+		update(batch, "done", true);
+	}
+
+	private synchronized List<JSONObject> pending() {
+		return IntStream.range(0, batches.length())
+			.mapToObj(batches::getJSONObject)
+			.filter(batch -> !batch.optBoolean("done"))
+			.toList();
+	}
+
+	private synchronized void update(JSONObject batch, String key, Object value) throws IOException {
+		batch.put(key, value);
+		save();
+	}
+
+	private synchronized void save() throws IOException {
+		var state = new JSONObject();
+		state.put("batches", batches);
+		Blabber.writeAtomically(stateFile, state.toString(2));
+	}
+}
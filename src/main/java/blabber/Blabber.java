@@ -7,14 +7,29 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -25,18 +40,30 @@ public class Blabber {
 	private static final Path RESULTS_TSV = Path.of("results.tsv");
 	private static final Path BATCH_JSON = Path.of("batch.jsonl");
 	private static final Path BATCH_RESULTS_TSV = Path.of("batch-results.tsv");
+	private static final Path BATCHES_JSON = Path.of("batches.json");
+	private static final Path BATCHED_TSV = Path.of("batched.tsv");
+	private static final Path SKIPPED_TSV = Path.of("skipped.tsv");
 	private static final Path PROMPTS_DIR = Path.of("prompts");
 	private static final Path RESULTS_DIR = Path.of("results");
+	private static final Path QUEUE_DIR = Path.of("queue");
+	private static final Path SEGMENTS_DIR = Path.of("segments");
+	private static final int MAX_SHARD_ATTEMPTS = 3;
+	private static final Duration SHARD_POLL_INTERVAL = Duration.ofSeconds(5);
+	private static final String GROUNDTRUTH_HEADER = "id\tconfiguration\tprompt\tsource\ttarget\tdepth\tgroundtruth\n";
+	private static final String RESULTS_HEADER =
+		"configuration\tpromptFile\tanswerFile\tsource\ttarget\tdepth\tanswer\tcorrect\tinTokens\toutTokens\n";
 
 	private final Configuration configuration;
 	private final OpenAi openAi;
+	private final OpenAiBatches openAiBatches;
 	private final SnippetGenerator snippetGenerator;
 
 	private static final Logger logger = LogManager.getLogger(Blabber.class);
 
-	Blabber(Configuration configuration, OpenAi openAi, SnippetGenerator snippetGenerator) {
+	Blabber(Configuration configuration, OpenAi openAi, OpenAiBatches openAiBatches, SnippetGenerator snippetGenerator) {
 		this.configuration = configuration;
 		this.openAi = openAi;
+		this.openAiBatches = openAiBatches;
 		this.snippetGenerator = snippetGenerator;
 	}
 
@@ -44,44 +71,93 @@ public class Blabber {
 	 * Generates a dataset for this configuration consisting of:
 	 *   - YES cases and NO case with the appropriate snippets and prompts
 	 *   - a groundtruth.tsv file summarizing the expected results
+	 * If the dataset exists, only the cases it lacks (new depths, larger sample size) are generated and appended.
 	 */
 	void makeDataset() {
-		var datasetPath = configuration.datasetPath();
-
-		if (datasetPath.toFile().exists()) {
-			logger.error("Dataset {} exists; skipping", datasetPath);
-			return;
-		}
-
 		try {
 			promptsDir().toFile().mkdirs();
+			var existing = existingCases();
 
 			var datasetLines = new ArrayList<String>();
-			datasetLines.add("id\tconfiguration\tprompt\tsource\ttarget\tdepth\tgroundtruth\n");
 			for (int depth : configuration.depths()) {
 				logger.info("Generating snippets for depth {}", depth);
 				for (int i = 0; i < configuration.sampleSize() / 2; i++) {
-					datasetLines.add(makeYesCase(i, depth));
-					datasetLines.add(makeNoCase(i, depth));
+					if (!existing.contains(Case.key(depth, true, i)))
+						datasetLines.add(makeCase(generateYesCase(i, depth)));
+					if (!existing.contains(Case.key(depth, false, i)))
+						datasetLines.add(makeCase(generateNoCase(i, depth)));
 				}
 			}
 
-			Files.writeString(groundtruthFile(), String.join("", datasetLines));
-			logger.info("Groundtruth generated at {}", groundtruthFile().toAbsolutePath());
+			if (datasetLines.isEmpty()) {
+				logger.info("Dataset {} is complete; nothing to generate", configuration.datasetPath());
+				return;
+			}
+
+			appendGroundtruth(datasetLines);
+			logger.info("{} cases added to groundtruth at {}", datasetLines.size(), groundtruthFile().toAbsolutePath());
 		} catch (IOException e) {
 			logger.error("Error generating dataset", e);
 		}
 	}
 
+	private String makeCase(GeneratedCase generated) throws IOException {
+		persist(generated);
+		return generated.c().toLine();
+	}
+
+	/**
+	 * Returns the keys of the cases already in this configuration's groundtruth, if any
+	 */
+	private Set<String> existingCases() throws IOException {
+		if (!groundtruthFile().toFile().exists())
+			return Set.of();
+
+		return groundtruth().stream()
+			.map(Case::key)
+			.collect(Collectors.toSet());
+	}
+
+	/**
+	 * Reads this configuration's groundtruth. Malformed lines, such as a line truncated by a crash while the pipeline
+	 * was appending it, are skipped; their cases are generated again when the dataset is extended.
+	 */
+	private List<Case> groundtruth() throws IOException {
+		var cases = new ArrayList<Case>();
+		for (var line : Files.readAllLines(groundtruthFile()).stream().skip(1).toList()) {
+			try {
+				cases.add(Case.parse(line));
+			} catch (IllegalArgumentException e) {
+				logger.warn("Skipping malformed groundtruth line \"{}\": {}", line, e.getMessage());
+			}
+		}
+		return cases;
+	}
+
+	/**
+	 * Appends {@code lines} to groundtruth.tsv, creating it if needed
+	 */
+	private void appendGroundtruth(List<String> lines) throws IOException {
+		var sb = new StringBuilder();
+		if (groundtruthFile().toFile().exists()) {
+			sb.append(Files.readString(groundtruthFile()));
+			if (!sb.isEmpty() && sb.charAt(sb.length() - 1) != '\n')
+				sb.append(System.lineSeparator());
+		} else {
+			sb.append(GROUNDTRUTH_HEADER);
+		}
+
+		lines.forEach(sb::append);
+		writeAtomically(groundtruthFile(), sb.toString());
+	}
+
 	/**
 	 * Generates a YES case, i.e., a case where the model is expected to answer positively
 	 */
-	private String makeYesCase(int i, int depth) throws IOException {
+	private GeneratedCase generateYesCase(int i, int depth) {
 		var nMethods = depth + configuration.padding();
-		var depthDir = promptsDir().resolve(String.valueOf(depth));
 		var identifierStrategy = configuration.identifierStrategy();
 		var promptStrategy = configuration.promptStrategy();
-		depthDir.resolve("yes").toFile().mkdirs();
 
 		var identifiers = snippetGenerator.generateIdentifiers(nMethods, identifierStrategy,
 			configuration.identifierLength());
@@ -94,27 +170,20 @@ public class Blabber {
 		var prompt = promptStrategy.generate(snippet, src, tgt);
 
 		var allIdentifiers = String.join(",", identifiers);
-		var chainedIdentifiers = String.join(",", identifiers.subList(identifiers.indexOf(src), identifiers.indexOf(tgt)));
-		var promptFile = depthDir.resolve("yes").resolve("%d.txt".formatted(i));
-		var chainAllFile = depthDir.resolve("yes").resolve("%d-chain-all.txt".formatted(i));
-		var chainFile = depthDir.resolve("yes").resolve("%d-chain.txt".formatted(i));
-
-		Files.writeString(promptFile, prompt);
-		Files.writeString(chainAllFile, allIdentifiers);
-		Files.writeString(chainFile, chainedIdentifiers);
+		var chainedIdentifiers = String.join(",", identifiers.subList(rand, rand + depth));
+		var promptFile = promptsDir().resolve(String.valueOf(depth)).resolve("yes").resolve("%d.txt".formatted(i));
 
-		return "%s\t%s\t%s\t%s\t%s\t%d\t%s%n".formatted(caseId, configuration.id(), promptFile, src, tgt, depth, "YES");
+		var c = new Case(caseId, configuration.id(), promptFile, src, tgt, depth, true);
+		return new GeneratedCase(c, prompt, allIdentifiers, chainedIdentifiers);
 	}
 
 	/**
 	 * Generates a NO case, i.e., a case where the model is expected to answer negatively
 	 */
-	private String makeNoCase(int i, int depth) throws IOException {
+	private GeneratedCase generateNoCase(int i, int depth) {
 		var nMethods = depth + configuration.padding();
-		var depthDir = promptsDir().resolve(String.valueOf(depth));
 		var identifierStrategy = configuration.identifierStrategy();
 		var promptStrategy = configuration.promptStrategy();
-		depthDir.resolve("no").toFile().mkdirs();
 
 		var identifiers = snippetGenerator.generateIdentifiers(nMethods, identifierStrategy,
 			configuration.identifierLength());
@@ -122,36 +191,64 @@ public class Blabber {
 
 		// NO: there's a single chain, so the only NO case with depth d and N methods is [N - d, N]
 		var caseId = "%s_%d_%s_%d".formatted(configuration.id(), depth, "no", i);
+		int rand = new Random().nextInt(0, nMethods - depth);
 		var src = identifiers.get(nMethods - depth);
-		var tgt = identifiers.get(new Random().nextInt(0, nMethods - depth));
+		var tgt = identifiers.get(rand);
 		var prompt = promptStrategy.generate(snippet, src, tgt);
 
 		var allIdentifiers = String.join(",", identifiers);
-		var chainedIdentifiers = String.join(",", identifiers.subList(identifiers.indexOf(tgt), identifiers.indexOf(src)));
-		var promptFile = depthDir.resolve("no").resolve("%d.txt".formatted(i));
-		var chainAllFile = depthDir.resolve("no").resolve("%d-chain-all.txt".formatted(i));
-		var chainFile = depthDir.resolve("no").resolve("%d-chain.txt".formatted(i));
+		var chainedIdentifiers = String.join(",", identifiers.subList(rand, nMethods - depth));
+		var promptFile = promptsDir().resolve(String.valueOf(depth)).resolve("no").resolve("%d.txt".formatted(i));
 
-		Files.writeString(promptFile, prompt);
-		Files.writeString(chainAllFile, allIdentifiers);
-		Files.writeString(chainFile, chainedIdentifiers);
+		var c = new Case(caseId, configuration.id(), promptFile, src, tgt, depth, false);
+		return new GeneratedCase(c, prompt, allIdentifiers, chainedIdentifiers);
+	}
 
-		return "%s\t%s\t%s\t%s\t%s\t%d\t%s%n".formatted(caseId, configuration.id(), promptFile, src, tgt, depth, "NO");
+	/**
+	 * Writes a generated case's prompt and identifiers next to each other in the prompts directory
+	 */
+	private void persist(GeneratedCase generated) throws IOException {
+		var promptFile = generated.c().promptFile();
+		var name = promptFile.getFileName().toString().replace(".txt", "");
+		promptFile.getParent().toFile().mkdirs();
+
+		Files.writeString(promptFile, generated.prompt());
+		Files.writeString(promptFile.resolveSibling(name + "-chain-all.txt"), generated.allIdentifiers());
+		Files.writeString(promptFile.resolveSibling(name + "-chain.txt"), generated.chainedIdentifiers());
 	}
 
 	/**
-	 * Generates a batch file for the current configuration that can supplied to OpenAI's platform
+	 * Generates a batch file for the current configuration that can supplied to OpenAI's platform. Batches of more
+	 * than {@code batchSize} requests are split into several files, suffixed with their index.
+	 * Cases submitted in a batch generated less than OpenAI's completion window ago, which may still be in flight,
+	 * are left out. Returns the generated files.
 	 */
-	void makeBatch(Path batchFile) {
+	List<Path> makeBatch(Path batchFile, int batchSize) {
+		return makeBatch(batchFile, batchSize, true);
+	}
+
+	/**
+	 * Generates batch files as {@link #makeBatch(Path, int)} does; unless {@code skipInFlight}, cases of recent
+	 * batches are submitted again, e.g., when the batches that included them are known to be done
+	 */
+	private List<Path> makeBatch(Path batchFile, int batchSize, boolean skipInFlight) {
 		var batchJson = batchFile != null
 			? configuration.datasetPath().resolve(batchFile)
 			: configuration.datasetPath().resolve(BATCH_JSON);
 
 		try {
-			var allReqs = Files.readAllLines(groundtruthFile()).stream().skip(1).map(line -> {
-				var fields = line.split("\t");
-				var id = fields[0];
-				var promptFile = Path.of(fields[2]);
+			// Cases that already have an answer, e.g., before the dataset was extended, are not submitted again
+			var inFlight = skipInFlight ? recentlyBatchedCases().keySet() : Set.<String>of();
+			var cases = groundtruth().stream().filter(c ->
+				!answerFile(c).toFile().exists() && !inFlight.contains(c.id())
+			).toList();
+			if (!inFlight.isEmpty())
+				logger.info("Leaving out the cases of the batches generated in the last {} hours",
+					OpenAiBatches.COMPLETION_WINDOW.toHours());
+
+			var allReqs = cases.stream().map(c -> {
+				var id = c.id();
+				var promptFile = c.promptFile();
 				var prompt = "";
 				try {
 					prompt = Files.readString(promptFile);
@@ -179,41 +276,96 @@ public class Blabber {
 				return reqObject.toString();
 			}).toList();
 
-			Files.writeString(batchJson, String.join("\n", allReqs));
-			logger.info("Batch generated at {}", batchJson.toAbsolutePath());
+			if (allReqs.isEmpty()) {
+				logger.info("All cases of {} have an answer; no batch to generate", configuration.datasetPath());
+				return List.of();
+			}
+
+			recordBatchedCases(cases);
+			if (allReqs.size() <= batchSize) {
+				Files.writeString(batchJson, String.join("\n", allReqs));
+				logger.info("Batch of {} requests generated at {}", allReqs.size(), batchJson.toAbsolutePath());
+				return List.of(batchJson);
+			}
+
+			var batchFiles = new ArrayList<Path>();
+			var name = batchJson.getFileName().toString().replaceFirst("\\.jsonl$", "");
+			for (int from = 0; from < allReqs.size(); from += batchSize) {
+				var shard = batchJson.resolveSibling("%s-%d.jsonl".formatted(name, batchFiles.size()));
+				var reqs = allReqs.subList(from, Math.min(from + batchSize, allReqs.size()));
+				Files.writeString(shard, String.join("\n", reqs));
+				batchFiles.add(shard);
+			}
+
+			logger.info("Batch of {} requests generated in {} files at {}", allReqs.size(), batchFiles.size(),
+				configuration.datasetPath().toAbsolutePath());
+			return batchFiles;
 		} catch (IOException e) {
 			logger.error(e);
+			return List.of();
 		}
 	}
 
 	/**
-	 * Process the given batch file, returned by OpenAI, to extract the results
+	 * Returns the cases included in batches generated less than OpenAI's completion window ago, along with the time
+	 * they were batched, in milliseconds
+	 */
+	private Map<String, Long> recentlyBatchedCases() throws IOException {
+		if (!batchedFile().toFile().exists())
+			return Map.of();
+
+		var since = System.currentTimeMillis() - OpenAiBatches.COMPLETION_WINDOW.toMillis();
+		return Files.readAllLines(batchedFile()).stream()
+			.map(line -> line.split("\t"))
+			.filter(fields -> fields.length == 2 && fields[1].matches("\\d+") && Long.parseLong(fields[1]) > since)
+			.collect(Collectors.toMap(fields -> fields[0], fields -> Long.parseLong(fields[1]), Math::max));
+	}
+
+	/**
+	 * Records in batched.tsv that {@code cases} were just batched, dropping the records older than the completion
+	 * window
 	 */
-	void processBatch(Path batchFile) {
+	private void recordBatchedCases(List<Case> cases) throws IOException {
+		var batched = new HashMap<>(recentlyBatchedCases());
+		var now = System.currentTimeMillis();
+		cases.forEach(c -> batched.put(c.id(), now));
+
+		var sb = new StringBuilder();
+		batched.forEach((id, time) -> sb.append("%s\t%d%n".formatted(id, time)));
+		writeAtomically(batchedFile(), sb.toString());
+	}
+
+	/**
+	 * Process the given batch file, returned by OpenAI, to extract the results. Responses whose prompt already has a
+	 * line in batch-results.tsv, e.g., when a batch is processed again after an interruption, are not added twice.
+	 */
+	void processBatch(Path batchFile) throws IOException {
 		if (batchFile == null || !configuration.datasetPath().resolve(batchFile).toFile().exists())
 			throw new IllegalArgumentException("Batch file does not exist: " + batchFile.toAbsolutePath());
 
 		var batchJson = configuration.datasetPath().resolve(batchFile);
 
-		try {
-			var groundtruth = Files.readAllLines(groundtruthFile()).stream().collect(Collectors.toMap(
-				line -> line.split("\t")[0],
-				line -> line
-			));
+		var groundtruth = groundtruth().stream().collect(Collectors.toMap(Case::id, c -> c, (a, b) -> b));
+		var processed = batchResultsFile().toFile().exists()
+			? Files.readAllLines(batchResultsFile()).stream()
+				.map(line -> line.split("\t"))
+				.filter(fields -> fields.length > 1)
+				.map(fields -> fields[1])
+				.collect(Collectors.toSet())
+			: Set.<String>of();
 
-			var results = Files.readAllLines(batchJson).stream().map(line -> {
-				var json = new JSONObject(line);
+		try {
+			// Failed requests are reported in the batch's error file and have no response
+			var results = Files.readAllLines(batchJson).stream().map(JSONObject::new).filter(json ->
+				!json.isNull("response") && json.getJSONObject("response").getInt("status_code") == 200
+			).filter(json ->
+				!processed.contains(groundtruth.get(json.getString("custom_id")).promptFile().toString())
+			).map(json -> {
 				var body = json.getJSONObject("response").getJSONObject("body");
-				var id = json.getString("custom_id");
-
-				var groundtruthLine = groundtruth.get(id);
-				var fields = groundtruthLine.split("\t");
-				var strategy = fields[1];
-				var promptFile = Path.of(fields[2]);
-				var src = fields[3];
-				var tgt = fields[4];
-				var depth = Integer.valueOf(fields[5]);
-				var expected = fields[6].equals("YES");
+				var c = groundtruth.get(json.getString("custom_id"));
+				var promptFile = c.promptFile();
+				var depth = c.depth();
+				var expected = c.expected();
 
 				var res = body
 					.getJSONArray("choices")
@@ -247,59 +399,73 @@ public class Blabber {
 					sb.append(answer);
 
 					Files.writeString(answerFile, sb.toString());
-
-					return "%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s".formatted(
-						strategy, promptFile, answerFile, src, tgt, depth, answer, isCorrect, inTokens, outTokens);
 				} catch (IOException e) {
-					logger.error(e);
-					return "error";
+					throw new UncheckedIOException(e);
 				}
+
+				return "%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s".formatted(c.configuration(), promptFile, answerFile,
+					c.source(), c.target(), depth, answer, isCorrect, inTokens, outTokens);
 			}).toList();
 
-			Files.writeString(batchResultsFile(), String.join("\n", results));
-			logger.info("Batch results generated at {}", batchResultsFile().toAbsolutePath());
-		} catch (IOException e) {
+			if (results.isEmpty()) {
+				logger.info("No new batch results in {}", batchJson);
+				return;
+			}
+
+			// Batches of an extended dataset add up to the results of the previous ones
+			var prefix = batchResultsFile().toFile().exists() && !Files.readString(batchResultsFile()).endsWith("\n")
+				? "\n"
+				: "";
+			Files.writeString(batchResultsFile(), prefix + String.join("\n", results) + "\n",
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			logger.info("{} batch results added to {}", results.size(), batchResultsFile().toAbsolutePath());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Submits the cases of this configuration's dataset that do not have an answer as OpenAI batches, and processes
+	 * the batches' output as they complete. Batches still pending from a previous, interrupted, run are resumed
+	 * instead of submitting new ones.
+	 */
+	void manageBatches(Path batchFile, int batchSize, int threads, Duration pollInterval) {
+		try {
+			var manager = new BatchManager(openAiBatches, batchesFile(), configuration.datasetPath(), this::processBatch);
+
+			if (manager.hasPending()) {
+				logger.info("Resuming the batches recorded in {}", batchesFile().toAbsolutePath());
+			} else {
+				// None of the batches this manager submitted is in flight anymore
+				manager.add(makeBatch(batchFile, batchSize, false));
+			}
+
+			manager.run(threads, pollInterval);
+		} catch (IOException | InterruptedException e) {
 			logger.error(e);
 		}
 	}
 
 	/**
-	 * Iterates over the dataset for this configuration and queries OpenAI for results
+	 * Iterates over the dataset for this configuration and queries OpenAI for results. Cases are submitted
+	 * round-robin across depths and YES/NO cases, and submission stops once the {@code budget} is exhausted;
+	 * the cases left out are listed in skipped.tsv.
 	 */
-	void runDataset(int retries, int threads) {
+	void runDataset(int retries, int threads, Scheduler.Budget budget) {
 		try {
 			var executor = Executors.newFixedThreadPool(threads);
 			var futures = new ArrayList<CompletableFuture<String>>();
-			var continuing = resultsFile().toFile().exists();
+			var scheduler = new Scheduler(budget, configuration.promptStrategy().expectedOutputTokens(),
+				observedOutputTokens());
 
-			Files.readAllLines(groundtruthFile()).stream().skip(1).forEach(line -> {
-				var fields = line.split("\t");
-				var strategy = fields[1];
-				var promptFile = Path.of(fields[2]);
-				var src = fields[3];
-				var tgt = fields[4];
-				var depth = Integer.valueOf(fields[5]);
-				var expected = fields[6].equals("YES");
-
-				var answerDir = resultsDir().resolve(String.valueOf(depth)).resolve(expected ? "yes" : "no");
-				answerDir.toFile().mkdirs();
-				var answerFile = answerDir.resolve(promptFile.getFileName());
-
-				if (!answerFile.toFile().exists()) {
-					for (int i = 0; i < retries; i++) {
-						futures.add(CompletableFuture.supplyAsync(() ->
-								runCase(strategy, promptFile, answerFile, src, tgt, depth, expected), executor));
-					}
-				}
-			});
+			Scheduler.roundRobin(unansweredCases()).forEach(c ->
+				futures.add(CompletableFuture.supplyAsync(() -> runScheduledCase(scheduler, c, retries), executor))
+			);
 
 			executor.shutdown();
 			executor.awaitTermination(1, TimeUnit.DAYS);
 
 			var sb = new StringBuilder();
-			if (!continuing)
-				sb.append("configuration\tpromptFile\tanswerFile\tsource\ttarget\tdepth\tanswer\tcorrect\tinTokens\toutTokens\n");
-
 			futures.forEach(f -> {
 				try {
 					sb.append(f.get());
@@ -308,19 +474,379 @@ public class Blabber {
 				}
 			});
 
-			Files.writeString(resultsFile(), sb.toString(), continuing ? StandardOpenOption.APPEND : StandardOpenOption.CREATE);
+			appendResults(sb.toString());
+			logger.info("Results written at {}", resultsFile().toAbsolutePath());
+			writeSkipped(scheduler.skipped());
+			logger.info("Run finished: {}", scheduler.summary());
+		} catch (IOException | InterruptedException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * Runs {@code c} {@code retries} times if the {@code scheduler} admits all of them within the budget, so that
+	 * a case is either fully run or skipped
+	 */
+	private String runScheduledCase(Scheduler scheduler, Case c, int retries) {
+		try {
+			var prompt = Files.readString(c.promptFile());
+			var estimate = scheduler.estimate(c, prompt);
+			if (!scheduler.tryAdmit(c, estimate.times(retries)))
+				return "";
+
+			var sb = new StringBuilder();
+			for (int i = 0; i < retries; i++) {
+				var line = runCase(c, prompt, CompletableFuture.completedFuture(null));
+				scheduler.settle(estimate, line);
+				sb.append(line);
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			logger.error(e);
+			return "";
+		}
+	}
+
+	/**
+	 * Returns the mean number of output tokens of the answers in results.tsv, at each depth
+	 */
+	private Map<Integer, Integer> observedOutputTokens() throws IOException {
+		if (!resultsFile().toFile().exists())
+			return Map.of();
+
+		return Files.readAllLines(resultsFile()).stream().skip(1)
+			.map(line -> line.split("\t"))
+			.filter(fields -> fields.length == 10)
+			.collect(Collectors.groupingBy(fields -> Integer.parseInt(fields[5]),
+				Collectors.collectingAndThen(Collectors.averagingInt(fields -> Integer.parseInt(fields[9])),
+					Double::intValue)));
+	}
+
+	/**
+	 * Records the cases a budgeted run did not submit in skipped.tsv, in the groundtruth's format
+	 */
+	private void writeSkipped(List<Case> skipped) throws IOException {
+		if (skipped.isEmpty()) {
+			Files.deleteIfExists(skippedFile());
+			return;
+		}
+
+		var sb = new StringBuilder(GROUNDTRUTH_HEADER);
+		skipped.forEach(c -> sb.append(c.toLine()));
+		writeAtomically(skippedFile(), sb.toString());
+		logger.info("{} cases skipped, listed in {}", skipped.size(), skippedFile().toAbsolutePath());
+	}
+
+	private List<Case> unansweredCases() throws IOException {
+		return groundtruth().stream()
+			.filter(c -> !answerFile(c).toFile().exists())
+			.toList();
+	}
+
+	/**
+	 * Generates the cases this configuration's dataset lacks and submits them to OpenAI as soon as they are generated,
+	 * along with the existing cases that do not have an answer yet. {@code generators} threads feed a bounded queue
+	 * that {@code threads} API workers consume, so generation blocks rather than running ahead of the network.
+	 * Prompts, groundtruth lines, and each case's results once it completes are persisted by a dedicated writer thread,
+	 * off the submission path.
+	 */
+	void runPipeline(int retries, int threads, int generators) {
+		try {
+			promptsDir().toFile().mkdirs();
+			var existing = existingCases();
+			var queue = new ArrayBlockingQueue<Submission>(2 * threads);
+			var generatorPool = Executors.newFixedThreadPool(generators);
+			var writer = Executors.newSingleThreadExecutor();
+			var workers = Executors.newFixedThreadPool(threads);
+
+			for (int t = 0; t < threads; t++) {
+				workers.submit(() -> {
+					try {
+						for (var s = queue.take(); s != Submission.END; s = queue.take()) {
+							var sb = new StringBuilder();
+							for (int i = 0; i < retries; i++)
+								sb.append(runCase(s.c(), s.prompt(), s.persisted()));
+
+							// Results are written as cases complete, so that an interrupted run loses none of them:
+							// cases with an answer are not submitted again
+							if (!sb.isEmpty())
+								writer.execute(() -> {
+									try {
+										appendResults(sb.toString());
+									} catch (IOException e) {
+										logger.error(e);
+									}
+								});
+						}
+					} catch (InterruptedException e) {
+						logger.error(e);
+					}
+				});
+			}
+
+			// Like runDataset, both existing and new cases are submitted round-robin across (depth, YES/NO) cells,
+			// existing cases first
+			if (groundtruthFile().toFile().exists()) {
+				Scheduler.roundRobin(unansweredCases())
+					.forEach(c -> generatorPool.execute(() -> enqueue(queue, c)));
+			}
+
+			for (int i = 0; i < configuration.sampleSize() / 2; i++) {
+				for (int depth : configuration.depths().stream().sorted().toList()) {
+					int d = depth, n = i;
+					if (!existing.contains(Case.key(depth, true, i)))
+						generatorPool.execute(() -> enqueue(queue, () -> generateYesCase(n, d), writer));
+					if (!existing.contains(Case.key(depth, false, i)))
+						generatorPool.execute(() -> enqueue(queue, () -> generateNoCase(n, d), writer));
+				}
+			}
+
+			generatorPool.shutdown();
+			generatorPool.awaitTermination(1, TimeUnit.DAYS);
+			for (int t = 0; t < threads; t++)
+				queue.put(Submission.END);
+
+			workers.shutdown();
+			workers.awaitTermination(1, TimeUnit.DAYS);
+			writer.shutdown();
+			writer.awaitTermination(1, TimeUnit.DAYS);
 			logger.info("Results written at {}", resultsFile().toAbsolutePath());
 		} catch (IOException | InterruptedException e) {
 			logger.error(e);
 		}
 	}
 
+	/**
+	 * Generates a case, queues it for submission, and hands it to the {@code writer} to be persisted meanwhile
+	 */
+	private void enqueue(BlockingQueue<Submission> queue, Supplier<GeneratedCase> generator, ExecutorService writer) {
+		GeneratedCase generated;
+		try {
+			generated = generator.get();
+		} catch (RuntimeException e) {
+			logger.error("Error generating a case", e);
+			return;
+		}
+
+		var persisted = CompletableFuture.runAsync(() -> {
+			try {
+				persist(generated);
+				appendGroundtruthLine(generated.c().toLine());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, writer);
+
+		try {
+			queue.put(new Submission(generated.c(), generated.prompt(), persisted));
+		} catch (InterruptedException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * Queues an existing case for submission
+	 */
+	private void enqueue(BlockingQueue<Submission> queue, Case c) {
+		try {
+			queue.put(new Submission(c, Files.readString(c.promptFile()), CompletableFuture.completedFuture(null)));
+		} catch (IOException | InterruptedException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * Appends a single line to groundtruth.tsv, creating it if needed. Unlike {@link #appendGroundtruth}, the file
+	 * is not rewritten: the pipeline's writer thread adds lines one by one as cases are persisted. A line truncated
+	 * by an earlier crash is terminated first, so that it does not corrupt the new one; readers skip it.
+	 */
+	private void appendGroundtruthLine(String line) throws IOException {
+		if (!groundtruthFile().toFile().exists())
+			Files.writeString(groundtruthFile(), GROUNDTRUTH_HEADER);
+
+		try (var file = new RandomAccessFile(groundtruthFile().toFile(), "r")) {
+			file.seek(file.length() - 1);
+			if (file.read() != '\n')
+				line = System.lineSeparator() + line;
+		}
+
+		Files.writeString(groundtruthFile(), line, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Appends {@code results} to results.tsv, creating it with its header if needed
+	 */
+	private void appendResults(String results) throws IOException {
+		if (!resultsFile().toFile().exists())
+			results = RESULTS_HEADER + results;
+
+		Files.writeString(resultsFile(), results, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Runs the dataset for this configuration as one worker among many. Cases are claimed through a {@link WorkQueue}
+	 * stored in the dataset directory, so any number of processes, on one or several hosts sharing that directory,
+	 * can split a dataset between them. The worker renews its claims while it runs them, and keeps going over the
+	 * cases that are not done, waiting for the claims of other workers to expire, until every case is done or has
+	 * failed {@code MAX_SHARD_ATTEMPTS} times on this worker. Each worker appends its results to its own segment,
+	 * and the segments are merged into results.tsv when the worker stops.
+	 */
+	void runShard(int retries, int threads, String workerId, Duration lease) {
+		try {
+			var queue = new WorkQueue(queueDir(), workerId, lease);
+			var segment = segmentFile(workerId);
+			segmentsDir().toFile().mkdirs();
+			// A worker restarted with the same identifier terminates the line its crash may have truncated
+			if (segment.toFile().exists() && !Files.readString(segment).endsWith("\n"))
+				Files.writeString(segment, System.lineSeparator(), StandardOpenOption.APPEND);
+
+			var executor = Executors.newFixedThreadPool(threads);
+			var heartbeat = Executors.newSingleThreadScheduledExecutor();
+			var period = Math.max(1_000, lease.toMillis() / 3);
+			heartbeat.scheduleAtFixedRate(queue::renewClaims, period, period, TimeUnit.MILLISECONDS);
+
+			var failures = new ConcurrentHashMap<String, Integer>();
+			var remaining = Scheduler.roundRobin(unansweredCases());
+			while (true) {
+				remaining = remaining.stream()
+					.filter(c -> !queue.isDone(c.id()) && !answerFile(c).toFile().exists())
+					.filter(c -> failures.getOrDefault(c.id(), 0) < MAX_SHARD_ATTEMPTS)
+					.toList();
+				if (remaining.isEmpty())
+					break;
+
+				var tasks = remaining.stream()
+					.map(c -> (Callable<Boolean>) () -> runClaimedCase(queue, segment, c, retries, failures))
+					.toList();
+				var claimedAny = false;
+				for (var f : executor.invokeAll(tasks))
+					claimedAny |= f.get();
+
+				// Everything left is held by other workers: wait until one of their claims may have expired, but check
+				// regularly whether they are done in the meantime
+				if (!claimedAny) {
+					var ids = remaining.stream().map(Case::id).toList();
+					var untilExpiry = queue.earliestExpiry(ids) - System.currentTimeMillis();
+					Thread.sleep(Math.min(Math.max(untilExpiry, 1_000), SHARD_POLL_INTERVAL.toMillis()));
+				}
+			}
+
+			heartbeat.shutdownNow();
+			executor.shutdown();
+			var given = failures.values().stream().filter(n -> n >= MAX_SHARD_ATTEMPTS).count();
+			logger.info("Worker {} found no more cases to claim; it gave up on {} failing cases", workerId, given);
+
+			mergeResults();
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * Claims {@code c} and, if successful, runs it and appends its results to the worker's {@code segment}.
+	 * Returns whether {@code c} was claimed.
+	 */
+	private boolean runClaimedCase(WorkQueue queue, Path segment, Case c, int retries, Map<String, Integer> failures) {
+		try {
+			if (!queue.tryClaim(c.id()))
+				return false;
+
+			logger.info("Worker {} claimed {}", queue.workerId(), c.id());
+			var sb = new StringBuilder();
+			for (int i = 0; i < retries; i++)
+				sb.append(runCase(c));
+
+			// Failed cases are released right away, so that any worker, this one included, can try them again
+			if (sb.isEmpty()) {
+				failures.merge(c.id(), 1, Integer::sum);
+				queue.release(c.id());
+				return true;
+			}
+
+			synchronized (segment) {
+				Files.writeString(segment, sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			queue.complete(c.id());
+			return true;
+		} catch (IOException e) {
+			logger.error(e);
+			failures.merge(c.id(), 1, Integer::sum);
+			return true;
+		}
+	}
+
+	/**
+	 * Merges the result segments of sharded runs into results.tsv. results.tsv is rebuilt every time from its rows
+	 * that come from no segment, e.g., from a previous non-sharded run, plus every segment, so that rows merged
+	 * while a worker was still writing them are completed by the next merge. Rows are keyed by prompt file: a case
+	 * that was run by several workers (e.g., after a lease expired) is taken from a single segment, and only the
+	 * newline-terminated lines of a segment are read, as the last one may still be being written. Merging is
+	 * idempotent and results.tsv is replaced atomically, so any worker may merge at any time.
+	 */
+	void mergeResults() {
+		try {
+			var segments = new ArrayList<Path>();
+			if (segmentsDir().toFile().exists()) {
+				try (var files = Files.list(segmentsDir())) {
+					files.sorted().forEach(segments::add);
+				}
+			}
+
+			var owners = new HashMap<String, Path>();
+			var merged = new ArrayList<String>();
+			for (var segment : segments) {
+				var content = Files.readString(segment);
+				for (var line : content.substring(0, content.lastIndexOf('\n') + 1).lines().toList()) {
+					var fields = line.split("\t");
+					// Skips lines garbled by a worker that crashed mid-write
+					if (fields.length != 10)
+						continue;
+
+					if (owners.computeIfAbsent(fields[1], k -> segment).equals(segment))
+						merged.add(line);
+				}
+			}
+
+			var lines = new ArrayList<String>();
+			lines.add(RESULTS_HEADER.strip());
+			if (resultsFile().toFile().exists()) {
+				Files.readAllLines(resultsFile()).stream().skip(1)
+					.filter(line -> {
+						var fields = line.split("\t");
+						return fields.length > 1 && !owners.containsKey(fields[1]);
+					})
+					.forEach(lines::add);
+			}
+			lines.addAll(merged);
+
+			writeAtomically(resultsFile(), String.join("\n", lines) + "\n");
+			logger.info("Merged {} segments into {}", segments.size(), resultsFile().toAbsolutePath());
+		} catch (IOException e) {
+			logger.error(e);
+		}
+	}
+
 	/**
 	 * Runs a given case of the present configuration's dataset
 	 */
-	String runCase(String strategy, Path promptFile, Path answerFile, String src, String tgt, int depth, boolean expected) {
+	String runCase(Case c) {
 		try {
-			var prompt = Files.readString(promptFile);
+			return runCase(c, Files.readString(c.promptFile()), CompletableFuture.completedFuture(null));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	/**
+	 * Runs a given case with its {@code prompt}. The answer is written once the case itself is {@code persisted}, so
+	 * that an answer never exists without its prompt and groundtruth.
+	 */
+	String runCase(Case c, String prompt, CompletableFuture<?> persisted) {
+		try {
+			var promptFile = c.promptFile();
+			var answerFile = answerFile(c);
+			var expected = c.expected();
 			var promptStrategy = configuration.promptStrategy();
 
 			logger.info("Submitting {}", promptFile);
@@ -345,16 +871,41 @@ public class Blabber {
 			sb.append("INTERPRETED AS:\n");
 			sb.append(answer);
 
+			persisted.join();
+			answerFile.getParent().toFile().mkdirs();
 			Files.writeString(answerFile, sb.toString());
 
 			return "%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s%n".formatted(
-				strategy, promptFile, answerFile, src, tgt, depth, answer, correct, inTokens, outTokens);
+				c.configuration(), promptFile, answerFile, c.source(), c.target(), c.depth(), answer, correct, inTokens,
+				outTokens);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return "";
 		}
 	}
 
+	/**
+	 * Writes {@code content} to a temporary file that then atomically replaces {@code file}, so that concurrent
+	 * readers never see a partially written file
+	 */
+	static void writeAtomically(Path file, String content) throws IOException {
+		var tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		Files.writeString(tmp, content);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * A case generated in memory, along with the files that go with its prompt
+	 */
+	record GeneratedCase(Case c, String prompt, String allIdentifiers, String chainedIdentifiers) {}
+
+	/**
+	 * A case waiting in the pipeline's queue; {@code persisted} completes once its files and groundtruth are written
+	 */
+	record Submission(Case c, String prompt, CompletableFuture<?> persisted) {
+		static final Submission END = new Submission(null, null, null);
+	}
+
 	Path groundtruthFile() {
 		return configuration.datasetPath().resolve(GROUNDTRUTH_TSV);
 	}
@@ -367,6 +918,18 @@ public class Blabber {
 		return configuration.datasetPath().resolve(BATCH_RESULTS_TSV);
 	}
 
+	Path skippedFile() {
+		return configuration.datasetPath().resolve(SKIPPED_TSV);
+	}
+
+	Path batchesFile() {
+		return configuration.datasetPath().resolve(BATCHES_JSON);
+	}
+
+	Path batchedFile() {
+		return configuration.datasetPath().resolve(BATCHED_TSV);
+	}
+
 	Path promptsDir() {
 		return configuration.datasetPath().resolve(PROMPTS_DIR);
 	}
@@ -374,4 +937,21 @@ public class Blabber {
 	Path resultsDir() {
 		return configuration.datasetPath().resolve(RESULTS_DIR);
 	}
+
+	Path queueDir() {
+		return configuration.datasetPath().resolve(QUEUE_DIR);
+	}
+
+	Path segmentsDir() {
+		return configuration.datasetPath().resolve(SEGMENTS_DIR);
+	}
+
+	Path segmentFile(String workerId) {
+		return segmentsDir().resolve("results-%s.tsv".formatted(workerId));
+	}
+
+	Path answerFile(Case c) {
+		var answerDir = resultsDir().resolve(String.valueOf(c.depth())).resolve(c.expected() ? "yes" : "no");
+		return answerDir.resolve(c.promptFile().getFileName());
+	}
 }
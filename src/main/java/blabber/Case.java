@@ -0,0 +1,44 @@
+package blabber;
+
+import java.nio.file.Path;
+
+/**
+ * A single line of a dataset's groundtruth.tsv
+ */
+record Case(
+	String id,
+	String configuration,
+	Path promptFile,
+	String source,
+	String target,
+	int depth,
+	boolean expected
+) {
+	/**
+	 * Parses a groundtruth.tsv line, throwing an IllegalArgumentException if it is malformed, e.g., truncated
+	 */
+	static Case parse(String line) {
+		var fields = line.split("\t");
+		if (fields.length != 7 || !fields[6].strip().matches("YES|NO"))
+			throw new IllegalArgumentException("Expected 7 fields ending with YES or NO");
+
+		return new Case(fields[0], fields[1], Path.of(fields[2]), fields[3], fields[4],
+			Integer.parseInt(fields[5]), fields[6].strip().equals("YES"));
+	}
+
+	String toLine() {
+		return "%s\t%s\t%s\t%s\t%s\t%d\t%s%n".formatted(id, configuration, promptFile, source, target, depth,
+			expected ? "YES" : "NO");
+	}
+
+	/**
+	 * Identifies a case within its dataset, regardless of the configuration's identifier
+	 */
+	static String key(int depth, boolean expected, int index) {
+		return "%d_%s_%d".formatted(depth, expected ? "yes" : "no", index);
+	}
+
+	String key() {
+		return key(depth, expected, Integer.parseInt(id.substring(id.lastIndexOf('_') + 1)));
+	}
+}
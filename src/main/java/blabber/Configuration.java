@@ -1,9 +1,18 @@
 package blabber;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
+/**
+ * A dataset's configuration; {@code id} identifies its dataset, see {@link #of}
+ */
 record Configuration(
 	List<Integer> depths,
 	boolean shuffle,
@@ -12,15 +21,51 @@ record Configuration(
 	PromptStrategy.Name promptStrategyName,
 	int sampleSize,
 	int padding,
-	String model
+	String model,
+	String id
 ) {
-	String id() {
-		return "%s-%s-%s-%s-%s-%d-%d".formatted(model, Collections.max(depths), shuffle, identifierStrategyName,
+	private static final Path DATASETS_DIR = Path.of("dataset");
+
+	private static final Logger logger = LogManager.getLogger(Configuration.class);
+
+	/**
+	 * Creates a configuration and resolves its dataset's identifier. Depths and sample size are not part of it, so
+	 * that a dataset can be extended with new depths or samples. Datasets generated before that were identified by
+	 * their maximum depth and sample size as well; such a dataset is kept, and extended, if its other fields match.
+	 */
+	static Configuration of(List<Integer> depths, boolean shuffle, IdentifierStrategy.Name identifierStrategyName,
+	                        int identifierLength, PromptStrategy.Name promptStrategyName, int sampleSize, int padding,
+	                        String model) {
+		var id = "%s-%s-%s-%s-%d".formatted(model, shuffle, identifierStrategyName, promptStrategyName, padding);
+		var legacyId = "%s-%s-%s-%s-%s-%d-%d".formatted(model, Collections.max(depths), shuffle, identifierStrategyName,
 			promptStrategyName, padding, sampleSize);
+		var legacyPattern = Pattern.compile("%s-\\d+-%s-%s-%s-%d-\\d+".formatted(Pattern.quote(model), shuffle,
+			identifierStrategyName, promptStrategyName, padding));
+
+		if (!DATASETS_DIR.resolve(id).toFile().exists()) {
+			try (var datasets = Files.list(DATASETS_DIR)) {
+				var legacyIds = datasets
+					.map(dataset -> dataset.getFileName().toString())
+					.filter(name -> legacyPattern.matcher(name).matches())
+					.sorted()
+					.toList();
+
+				if (!legacyIds.isEmpty()) {
+					id = legacyIds.contains(legacyId) ? legacyId : legacyIds.get(0);
+					if (legacyIds.size() > 1)
+						logger.warn("Several datasets match this configuration {}; using {}", legacyIds, id);
+				}
+			} catch (IOException e) {
+				// No datasets yet
+			}
+		}
+
+		return new Configuration(depths, shuffle, identifierStrategyName, identifierLength, promptStrategyName,
+			sampleSize, padding, model, id);
 	}
 
 	Path datasetPath() {
-		return Path.of("dataset", id());
+		return DATASETS_DIR.resolve(id);
 	}
 
 	IdentifierStrategy identifierStrategy() {
@@ -1,6 +1,10 @@
 package blabber;
 
-import org.apache.commons.lang.RandomStringUtils;
+import javax.lang.model.SourceVersion;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 /**
  * An IdentifierStrategy specifies how method identifiers are generated
@@ -21,12 +25,152 @@ public interface IdentifierStrategy {
 	String id(int length);
 
 	/**
-	 * The ALPHANUMERIC strategy generates random alphanumeric identifiers of length {@code length}
+	 * Generates {@code n} identifiers for a single snippet; they must be distinct from one another
+	 */
+	default List<String> ids(int n, int length) {
+		return IntStream.range(0, n)
+			.mapToObj(i -> id(length))
+			.toList();
+	}
+
+	/**
+	 * The ALPHANUMERIC strategy generates random lowercase identifiers of length {@code length}.
+	 * The identifiers of a snippet are the images of 0, 1, 2... through a random bijection over the 26^length
+	 * identifiers, so they are distinct by construction, whatever their number and length.
 	 */
 	class AlphanumericIdentifierStrategy implements IdentifierStrategy {
+		private static final int ALPHABET = 26;
+		private static final int ROUNDS = 3;
+		// 26^13 is the largest power of 26 that fits in a long; longer identifiers get random leading letters
+		private static final int MAX_PERMUTED_LENGTH = 13;
+
+		private final Random random;
+
+		AlphanumericIdentifierStrategy() {
+			this(new Random());
+		}
+
+		AlphanumericIdentifierStrategy(Random random) {
+			this.random = random;
+		}
+
 		@Override
 		public String id(int length) {
-			return RandomStringUtils.randomAlphabetic(length).toLowerCase();
+			return ids(1, length).get(0);
+		}
+
+		@Override
+		public List<String> ids(int n, int length) {
+			if (length < 1)
+				throw new IllegalArgumentException("Identifiers must be at least 1 letter long, got %d".formatted(length));
+
+			var permutation = new Permutation(Math.min(length, MAX_PERMUTED_LENGTH), random);
+			var prefixLength = length - permutation.digits;
+			var ids = new ArrayList<String>(n);
+			var chars = new char[length];
+
+			// Java keywords are skipped; there are only a handful of them for any length, so this loop is bounded
+			for (long k = 0; ids.size() < n; k++) {
+				if (k >= permutation.size)
+					throw new IllegalArgumentException(
+						"Cannot generate %d distinct identifiers of length %d".formatted(n, length));
+
+				for (int i = 0; i < prefixLength; i++)
+					chars[i] = (char) ('a' + random.nextInt(ALPHABET));
+
+				var x = permutation.apply(k);
+				for (int i = length - 1; i >= prefixLength; i--, x /= ALPHABET)
+					chars[i] = (char) ('a' + x % ALPHABET);
+
+				var id = new String(chars);
+				if (!SourceVersion.isKeyword(id))
+					ids.add(id);
+			}
+
+			return ids;
+		}
+
+		/**
+		 * A random bijection over [0, 26^digits): each round applies an affine map modulo 26^digits, which mixes
+		 * digits through carries, then substitutes every base-26 digit with a per-position random permutation
+		 * of the alphabet. Carries only propagate upward, so the last j digits would depend only on x mod 26^j,
+		 * repeating every 26^j identifiers; rounds are thus separated by a rotation of the digits by half their
+		 * number, which moves the upper digits down.
+		 */
+		private static class Permutation {
+			private final int digits;
+			private final long size;
+			private final long[] weights;
+			private final long rotation;
+			private final long[] multipliers = new long[ROUNDS];
+			private final long[] increments = new long[ROUNDS];
+			private final int[][][] substitutions;
+
+			Permutation(int digits, Random random) {
+				this.digits = digits;
+				this.weights = new long[digits];
+				long size = 1;
+				for (int d = 0; d < digits; d++, size *= ALPHABET)
+					weights[d] = size;
+				this.size = size;
+				this.rotation = weights[digits / 2];
+				this.substitutions = new int[ROUNDS][digits][];
+
+				for (int r = 0; r < ROUNDS; r++) {
+					// The multiplier must be coprime with 26^digits = 2^digits * 13^digits, i.e., odd and not a multiple
+					// of 13; adding 2 to an odd multiple of 13 keeps it odd and makes it coprime
+					long a = random.nextLong(size) | 1;
+					if (a % 13 == 0)
+						a = (a + 2) % size;
+					multipliers[r] = a;
+					increments[r] = random.nextLong(size);
+
+					for (int d = 0; d < digits; d++)
+						substitutions[r][d] = shuffledAlphabet(random);
+				}
+			}
+
+			long apply(long x) {
+				for (int r = 0; r < ROUNDS; r++) {
+					x = (mulMod(multipliers[r], x, size) + increments[r]) % size;
+
+					long y = 0;
+					for (int d = 0; d < digits; d++)
+						y += substitutions[r][d][(int) (x / weights[d] % ALPHABET)] * weights[d];
+					x = y;
+
+					if (r < ROUNDS - 1)
+						x = x % rotation * (size / rotation) + x / rotation;
+				}
+				return x;
+			}
+
+			private static int[] shuffledAlphabet(Random random) {
+				var alphabet = IntStream.range(0, ALPHABET).toArray();
+				for (int i = ALPHABET - 1; i > 0; i--) {
+					int j = random.nextInt(i + 1);
+					int tmp = alphabet[i];
+					alphabet[i] = alphabet[j];
+					alphabet[j] = tmp;
+				}
+				return alphabet;
+			}
+
+			/**
+			 * Computes {@code a * x mod m} without overflowing; m is at most 26^13 < 2^62
+			 */
+			private static long mulMod(long a, long x, long m) {
+				if (m <= 1L << 31)
+					return a * x % m;
+
+				long result = 0;
+				for (x %= m; a > 0; a >>= 1) {
+					if ((a & 1) == 1)
+						result = (result + x) % m;
+					x = (x << 1) % m;
+				}
+				return result;
+			}
 		}
 	}
 
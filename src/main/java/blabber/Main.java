@@ -4,9 +4,15 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 
 @Command(name = "reachability-blabber")
@@ -44,6 +50,18 @@ public class Main implements Runnable {
 	@Option(names = "--threads", defaultValue = "4",
 		description = "When using OpenAI's API, how many requests do we run in parallel?")
 	private int threads;
+	@Option(names = "--budget-usd", defaultValue = "0",
+		description = "With --run, stop submitting requests once their estimated cost in this run reaches this many US dollars")
+	private double budgetUsd;
+	@Option(names = "--budget-tokens", defaultValue = "0",
+		description = "With --run, stop submitting requests once their estimated input and output tokens in this run reach this number")
+	private long budgetTokens;
+	@Option(names = "--price-input", defaultValue = "0",
+		description = "The model's price in US dollars per million input tokens, required by --budget-usd")
+	private double priceInput;
+	@Option(names = "--price-output", defaultValue = "0",
+		description = "The model's price in US dollars per million output tokens, required by --budget-usd")
+	private double priceOutput;
 	@Option(names = "--make-dataset",
 		description = "Generate the groundtruth dataset")
 	private boolean makeDataset;
@@ -59,18 +77,63 @@ public class Main implements Runnable {
 	@Option(names = "--batch-file",
 		description = "Name of the batch file to generate and/or to process")
 	private Path batchFile;
+	@Option(names = "--batch-size", defaultValue = "50000",
+		description = "Maximum number of requests per batch file; larger batches are split into several files")
+	private int batchSize;
+	@Option(names = "--manage-batches",
+		description = "Generate the batch files, submit them to OpenAI, and process their results as they complete")
+	private boolean manageBatches;
+	@Option(names = "--poll-seconds", defaultValue = "30",
+		description = "When managing batches, initial delay between two polls of a batch, doubled after every poll")
+	private int pollSeconds;
+	@Option(names = "--api-base", defaultValue = "https://api.openai.com/v1",
+		description = "Base URL of OpenAI's files and batches endpoints")
+	private String apiBase;
+	@Option(names = "--shard",
+		description = "With --run, run as one worker among many, claiming cases through a work queue in the dataset directory")
+	private boolean shard;
+	@Option(names = "--worker-id",
+		description = "Identifier of this worker in a sharded run; defaults to <hostname>-<pid>")
+	private String workerId;
+	@Option(names = "--lease-minutes", defaultValue = "30",
+		description = "In a sharded run, after how many minutes a claimed case that is not done can be claimed again")
+	private int leaseMinutes;
+	@Option(names = "--pipeline",
+		description = "With --run, generate the dataset's missing cases while submitting them, instead of generating the dataset first")
+	private boolean pipeline;
+	@Option(names = "--generators", defaultValue = "2",
+		description = "In a pipelined run, how many threads generate cases")
+	private int generators;
+	@Option(names = "--merge-results",
+		description = "Merge the result segments of a sharded run into results.tsv")
+	private boolean mergeResults;
+
+	@Spec
+	private CommandSpec spec;
 
 	private static final Logger logger = LogManager.getLogger(Main.class);
 
 	public void run() {
+		// Rejecting the options that would otherwise be silently ignored
+		if (pipeline && shard)
+			throw new ParameterException(spec.commandLine(), "--pipeline and --shard cannot be combined");
+		if ((makeDataset || run && pipeline) && identifierStrategy == IdentifierStrategy.Name.ALPHANUMERIC
+			&& identifierLength < 1)
+			throw new ParameterException(spec.commandLine(),
+				"--identifier-length must be at least 1 with the ALPHANUMERIC identifier strategy");
+		if ((budgetUsd > 0 || budgetTokens > 0) && (!run || pipeline || shard || makeBatch || processBatch || manageBatches))
+			throw new ParameterException(spec.commandLine(),
+				"--budget-usd and --budget-tokens only apply to --run, without --pipeline, --shard, or --manage-batches");
+
 		// Building our configuration
-		var configuration = new Configuration(depths, shuffle, identifierStrategy, identifierLength,
+		var configuration = Configuration.of(depths, shuffle, identifierStrategy, identifierLength,
 			promptStrategy, sampleSize, padding, model);
 
 		// Setting up our dependencies
 		var openAi = new OpenAi(model, token);
+		var openAiBatches = new OpenAiBatches(apiBase, token);
 		var snippetGenerator = new SnippetGenerator();
-		var blabber = new Blabber(configuration, openAi, snippetGenerator);
+		var blabber = new Blabber(configuration, openAi, openAiBatches, snippetGenerator);
 
 		try {
 			if (makeDataset) {
@@ -78,17 +141,33 @@ public class Main implements Runnable {
 			}
 
 			if (makeBatch) {
-				blabber.makeBatch(batchFile);
+				blabber.makeBatch(batchFile, batchSize);
 			} else if (processBatch) {
 				blabber.processBatch(batchFile);
+			} else if (manageBatches) {
+				blabber.manageBatches(batchFile, batchSize, threads, Duration.ofSeconds(pollSeconds));
+			} else if (run && pipeline) {
+				blabber.runPipeline(retries, threads, generators);
+			} else if (run && shard) {
+				blabber.runShard(retries, threads, workerId(), Duration.ofMinutes(leaseMinutes));
 			} else if (run) {
-				blabber.runDataset(retries, threads);
+				blabber.runDataset(retries, threads, new Scheduler.Budget(budgetUsd, budgetTokens, priceInput, priceOutput));
+			}
+
+			if (mergeResults) {
+				blabber.mergeResults();
 			}
 		} catch (Exception e) {
 			logger.error(e);
 		}
 	}
 
+	private String workerId() throws UnknownHostException {
+		if (workerId != null)
+			return workerId;
+		return "%s-%d".formatted(InetAddress.getLocalHost().getHostName(), ProcessHandle.current().pid());
+	}
+
 	public static void main(String[] args) {
 		var exitCode = new CommandLine(new Main()).execute(args);
 		System.exit(exitCode);
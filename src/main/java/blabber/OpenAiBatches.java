@@ -0,0 +1,115 @@
+package blabber;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Handles communication with OpenAI's files and batches endpoints. The base URL can point to a local stand-in
+ * of these endpoints.
+ */
+public class OpenAiBatches {
+	private static final String COMPLETIONS_ENDPOINT = "/v1/chat/completions";
+	// After this window, a batch is either completed or expired
+	static final Duration COMPLETION_WINDOW = Duration.ofHours(24);
+
+	private final String baseUrl;
+	private final String token;
+	private final HttpClient client;
+
+	public OpenAiBatches(String baseUrl, String token) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.token = token;
+		this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+	}
+
+	/**
+	 * Uploads the batch input {@code file} and returns its file identifier
+	 */
+	public String upload(Path file) throws IOException, InterruptedException {
+		var boundary = "blabber-" + UUID.randomUUID();
+		var head = """
+			--%s\r
+			Content-Disposition: form-data; name="purpose"\r
+			\r
+			batch\r
+			--%s\r
+			Content-Disposition: form-data; name="file"; filename="%s"\r
+			Content-Type: application/jsonl\r
+			\r
+			""".formatted(boundary, boundary, file.getFileName());
+		var tail = "\r\n--%s--\r\n".formatted(boundary);
+
+		var body = HttpRequest.BodyPublishers.concat(
+			HttpRequest.BodyPublishers.ofString(head),
+			HttpRequest.BodyPublishers.ofFile(file),
+			HttpRequest.BodyPublishers.ofString(tail));
+		var request = request("/files")
+			.header("Content-Type", "multipart/form-data; boundary=" + boundary)
+			.POST(body)
+			.build();
+
+		return send(request).getString("id");
+	}
+
+	/**
+	 * Creates a chat completion batch from the uploaded input file {@code fileId} and returns the batch identifier
+	 */
+	public String createBatch(String fileId) throws IOException, InterruptedException {
+		var bodyObject = new JSONObject();
+		bodyObject.put("input_file_id", fileId);
+		bodyObject.put("endpoint", COMPLETIONS_ENDPOINT);
+		bodyObject.put("completion_window", "%dh".formatted(COMPLETION_WINDOW.toHours()));
+
+		var request = request("/batches")
+			.header("Content-Type", "application/json")
+			.POST(HttpRequest.BodyPublishers.ofString(bodyObject.toString()))
+			.build();
+
+		return send(request).getString("id");
+	}
+
+	/**
+	 * Returns the batch object of {@code batchId}, including its status and output and error file identifiers
+	 */
+	public JSONObject retrieveBatch(String batchId) throws IOException, InterruptedException {
+		return send(request("/batches/" + batchId).GET().build());
+	}
+
+	/**
+	 * Downloads the content of {@code fileId} into {@code target}
+	 */
+	public void download(String fileId, Path target) throws IOException, InterruptedException {
+		var request = request("/files/%s/content".formatted(fileId)).GET().build();
+		var response = client.send(request, HttpResponse.BodyHandlers.ofFile(target));
+
+		if (response.statusCode() / 100 != 2) {
+			var error = Files.readString(target);
+			Files.deleteIfExists(target);
+			throw new IOException("[%d] %s".formatted(response.statusCode(), error));
+		}
+	}
+
+	private HttpRequest.Builder request(String path) {
+		return HttpRequest.newBuilder(URI.create(baseUrl + path))
+			.timeout(Duration.ofSeconds(120))
+			.header("Authorization", "Bearer " + token);
+	}
+
+	private JSONObject send(HttpRequest request) throws IOException, InterruptedException {
+		var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+		if (response.statusCode() / 100 != 2)
+			throw new IOException("[%d] %s".formatted(response.statusCode(), response.body()));
+
+		return new JSONObject(response.body());
+	}
+}
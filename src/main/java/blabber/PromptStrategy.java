@@ -41,6 +41,11 @@ public interface PromptStrategy {
 	 */
 	Answer evaluate(String answer);
 
+	/**
+	 * How many tokens we expect the LLM's answer to take, before any answer has been observed
+	 */
+	int expectedOutputTokens();
+
 	class YesNoPromptStrategy implements PromptStrategy {
 		@Override
 		public String generate(String snippet, String source, String target) {
@@ -64,6 +69,11 @@ public interface PromptStrategy {
 				return Answer.NO;
 			return Answer.NA;
 		}
+
+		@Override
+		public int expectedOutputTokens() {
+			return 1;
+		}
 	}
 
 	class StepByStepPromptStrategy implements PromptStrategy {
@@ -92,6 +102,11 @@ public interface PromptStrategy {
 				return Answer.NO;
 			return Answer.NA;
 		}
+
+		@Override
+		public int expectedOutputTokens() {
+			return 500;
+		}
 	}
 
 	class SycophancyStrategy implements PromptStrategy {
@@ -122,5 +137,10 @@ public interface PromptStrategy {
 				return Answer.NO;
 			return Answer.NA;
 		}
+
+		@Override
+		public int expectedOutputTokens() {
+			return 500;
+		}
 	}
 }
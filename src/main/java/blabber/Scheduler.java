@@ -0,0 +1,142 @@
+package blabber;
+
+import com.theokanning.openai.utils.TikTokensUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides in which order a dataset's cases are submitted, and which of them fit in a budget. Cases are interleaved
+ * round-robin across (depth, YES/NO) cells, so that a run that exhausts its budget covers every cell as evenly as
+ * possible. A case is admitted, with all its retries, only if their estimated cost, added to the cost of the answers
+ * received so far and of the requests in flight, fits in the budget; the first case that does not fit stops the run,
+ * and the cases that remain are recorded as skipped. The budget covers a single run: the cost of earlier runs, whose
+ * answers are already in results.tsv, is not counted.
+ */
+class Scheduler {
+	/**
+	 * A budget in US dollars and/or in tokens, 0 meaning unlimited, along with the model's prices in US dollars per
+	 * million input and output tokens
+	 */
+	record Budget(double usd, long tokens, double inputPrice, double outputPrice) {
+		Budget {
+			if (usd > 0 && (inputPrice <= 0 || outputPrice <= 0))
+				throw new IllegalArgumentException(
+					"A budget in US dollars requires both the model's input and output prices");
+		}
+
+		double cost(Usage usage) {
+			return (usage.inTokens() * inputPrice + usage.outTokens() * outputPrice) / 1_000_000;
+		}
+	}
+
+	/**
+	 * The tokens used, or expected to be used, by a single request
+	 */
+	record Usage(long inTokens, long outTokens) {
+		long tokens() {
+			return inTokens + outTokens;
+		}
+
+		Usage times(int n) {
+			return new Usage(inTokens * n, outTokens * n);
+		}
+	}
+
+	private final Budget budget;
+	private final int defaultOutputTokens;
+	private final Map<Integer, Integer> observedOutputTokens;
+	private final Set<Case> skipped = new LinkedHashSet<>();
+
+	private double spentUsd;
+	private long spentTokens;
+	private double reservedUsd;
+	private long reservedTokens;
+	private int admitted;
+	private boolean exhausted;
+
+	/**
+	 * Output tokens are estimated from {@code observedOutputTokens}, the mean answer length observed at each depth,
+	 * or from {@code defaultOutputTokens} for depths without answers yet
+	 */
+	Scheduler(Budget budget, int defaultOutputTokens, Map<Integer, Integer> observedOutputTokens) {
+		this.budget = budget;
+		this.defaultOutputTokens = defaultOutputTokens;
+		this.observedOutputTokens = observedOutputTokens;
+	}
+
+	/**
+	 * Orders {@code cases} round-robin across (depth, YES/NO) cells: one case of each cell in turn, by increasing depth
+	 */
+	static List<Case> roundRobin(List<Case> cases) {
+		var cells = new LinkedHashMap<String, ArrayDeque<Case>>();
+		cases.stream()
+			.sorted(Comparator.comparingInt(Case::depth).thenComparing(c -> !c.expected()))
+			.forEach(c -> cells.computeIfAbsent(c.depth() + "_" + c.expected(), k -> new ArrayDeque<>()).add(c));
+
+		var ordered = new ArrayList<Case>(cases.size());
+		while (ordered.size() < cases.size()) {
+			for (var cell : cells.values()) {
+				if (!cell.isEmpty())
+					ordered.add(cell.poll());
+			}
+		}
+		return ordered;
+	}
+
+	Usage estimate(Case c, String prompt) {
+		return new Usage(TikTokensUtil.tokens("gpt-3.5-turbo-0301", prompt),
+			observedOutputTokens.getOrDefault(c.depth(), defaultOutputTokens));
+	}
+
+	/**
+	 * Reserves the {@code estimate}d cost of the requests for {@code c} if it fits in the budget; otherwise, stops
+	 * admitting cases and records {@code c} as skipped. Each request is then {@link #settle}d on its own.
+	 */
+	synchronized boolean tryAdmit(Case c, Usage estimate) {
+		var fitsUsd = budget.usd() <= 0 || spentUsd + reservedUsd + budget.cost(estimate) <= budget.usd();
+		var fitsTokens = budget.tokens() <= 0 || spentTokens + reservedTokens + estimate.tokens() <= budget.tokens();
+		exhausted |= !fitsUsd || !fitsTokens;
+
+		if (exhausted) {
+			skipped.add(c);
+			return false;
+		}
+
+		reservedUsd += budget.cost(estimate);
+		reservedTokens += estimate.tokens();
+		admitted++;
+		return true;
+	}
+
+	/**
+	 * Replaces the reserved {@code estimate} of an admitted request with its actual usage, read from its results.tsv
+	 * {@code resultLine}; failed requests, with an empty line, are not charged
+	 */
+	synchronized void settle(Usage estimate, String resultLine) {
+		reservedUsd -= budget.cost(estimate);
+		reservedTokens -= estimate.tokens();
+
+		var fields = resultLine.strip().split("\t");
+		if (fields.length == 10) {
+			var actual = new Usage(Long.parseLong(fields[8]), Long.parseLong(fields[9]));
+			spentUsd += budget.cost(actual);
+			spentTokens += actual.tokens();
+		}
+	}
+
+	synchronized List<Case> skipped() {
+		return List.copyOf(skipped);
+	}
+
+	synchronized String summary() {
+		return "%d cases admitted, %d tokens spent (%.2f USD), %d cases skipped".formatted(admitted, spentTokens,
+			spentUsd, skipped.size());
+	}
+}
@@ -7,13 +7,10 @@ import javax.lang.model.element.Modifier;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.IntStream;
 
 class SnippetGenerator {
 	List<String> generateIdentifiers(int n, IdentifierStrategy strategy, int identifierLength) {
-		return IntStream.range(0, n)
-			.mapToObj(i -> strategy.id(identifierLength))
-			.toList();
+		return strategy.ids(n, identifierLength);
 	}
 
 	String makeSnippet(List<String> identifiers, boolean shuffle) {
@@ -25,7 +22,7 @@ class SnippetGenerator {
 				.returns(void.class);
 
 			if (i + 1 < identifiers.size())
-				m.addStatement(identifiers.get(i + 1 -> radom) + "()");
+				m.addStatement(identifiers.get(i + 1) + "()");
 
 			methods.add(m.build());
 		}
@@ -0,0 +1,179 @@
+package blabber;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A lock-free, lease-based work queue stored in a directory that may be shared between processes and hosts.
+ * A case is claimed by atomically creating a claim file; a claim expires after its lease unless its worker renews
+ * it, so that the cases held by a crashed worker are eventually picked up by another one. Expiry relies on the
+ * workers' clocks being reasonably in sync.
+ */
+class WorkQueue {
+	private static final Path CLAIMS_DIR = Path.of("claims");
+	private static final Path DONE_DIR = Path.of("done");
+
+	private final Path claimsDir;
+	private final Path doneDir;
+	private final String workerId;
+	private final Duration lease;
+	// The claim files currently held by this worker, by case
+	private final Map<String, Path> held = new ConcurrentHashMap<>();
+
+	private static final Logger logger = LogManager.getLogger(WorkQueue.class);
+
+	WorkQueue(Path queueDir, String workerId, Duration lease) throws IOException {
+		this.claimsDir = queueDir.resolve(CLAIMS_DIR);
+		this.doneDir = queueDir.resolve(DONE_DIR);
+		this.workerId = workerId;
+		this.lease = lease;
+
+		Files.createDirectories(claimsDir);
+		Files.createDirectories(doneDir);
+	}
+
+	/**
+	 * Attempts to claim {@code caseId} for this worker. Claims are numbered: the live claim is the highest-numbered
+	 * one, and an expired claim {@code k} is taken over by creating claim {@code k + 1}. Claim files are published
+	 * with a hard link, which fails atomically if the file exists, so two workers never hold the same claim.
+	 */
+	boolean tryClaim(String caseId) throws IOException {
+		if (isDone(caseId))
+			return false;
+
+		int generation = liveGeneration(caseId) + 1;
+		if (generation > 0 && !isExpired(claimFile(caseId, generation - 1)))
+			return false;
+
+		var tmp = claimsDir.resolve("%s.%s.tmp".formatted(caseId, workerId));
+		Files.writeString(tmp, "%s\t%d".formatted(workerId, System.currentTimeMillis() + lease.toMillis()));
+		try {
+			Files.createLink(claimFile(caseId, generation), tmp);
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		held.put(caseId, claimFile(caseId, generation));
+
+		// Another worker may have completed the case between our first check and our claim
+		if (isDone(caseId)) {
+			held.remove(caseId);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Extends the lease of every claim this worker holds. A claim that another worker took over after it expired
+	 * is dropped; both workers then run the case, and merging keeps a single result.
+	 */
+	void renewClaims() {
+		held.forEach((caseId, claimFile) -> {
+			try {
+				if (Files.exists(nextClaimFile(claimFile))) {
+					logger.warn("Worker {} lost its claim on {}", workerId, caseId);
+					held.remove(caseId);
+				} else {
+					writeClaim(claimFile, System.currentTimeMillis() + lease.toMillis());
+				}
+			} catch (IOException e) {
+				logger.error("Could not renew the claim on {}: {}", caseId, e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Gives up this worker's claim on {@code caseId}, e.g., after a failure, by expiring it right away
+	 */
+	void release(String caseId) throws IOException {
+		var claimFile = held.remove(caseId);
+		if (claimFile != null && !Files.exists(nextClaimFile(claimFile)))
+			writeClaim(claimFile, 0);
+	}
+
+	/**
+	 * Marks {@code caseId} as done; it will never be claimed again
+	 */
+	void complete(String caseId) throws IOException {
+		held.remove(caseId);
+		try {
+			Files.createFile(doneDir.resolve(caseId));
+		} catch (FileAlreadyExistsException e) {
+			// Completed twice, e.g., after our lease expired; nothing to do
+		}
+	}
+
+	boolean isDone(String caseId) {
+		return Files.exists(doneDir.resolve(caseId));
+	}
+
+	/**
+	 * Returns the earliest time, in milliseconds, at which one of the live claims on {@code caseIds} expires;
+	 * now if some of them are not claimed at all
+	 */
+	long earliestExpiry(Collection<String> caseIds) throws IOException {
+		var earliest = Long.MAX_VALUE;
+		for (var caseId : caseIds) {
+			int generation = liveGeneration(caseId);
+			earliest = Math.min(earliest, generation < 0 ? 0 : expiry(claimFile(caseId, generation)));
+		}
+		return Math.max(earliest, System.currentTimeMillis());
+	}
+
+	String workerId() {
+		return workerId;
+	}
+
+	/**
+	 * Returns the number of the live claim on {@code caseId}, or -1 if it was never claimed
+	 */
+	private int liveGeneration(String caseId) {
+		int generation = 0;
+		while (Files.exists(claimFile(caseId, generation)))
+			generation++;
+		return generation - 1;
+	}
+
+	private void writeClaim(Path claimFile, long expiry) throws IOException {
+		var tmp = Files.createTempFile(claimsDir, workerId, ".tmp");
+		Files.writeString(tmp, "%s\t%d".formatted(workerId, expiry));
+		Files.move(tmp, claimFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private boolean isExpired(Path claimFile) throws IOException {
+		return expiry(claimFile) < System.currentTimeMillis();
+	}
+
+	private long expiry(Path claimFile) throws IOException {
+		try {
+			var fields = Files.readString(claimFile).split("\t");
+			return Long.parseLong(fields[1].trim());
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	private Path claimFile(String caseId, int generation) {
+		return claimsDir.resolve("%s.%d.claim".formatted(caseId, generation));
+	}
+
+	private Path nextClaimFile(Path claimFile) {
+		var name = claimFile.getFileName().toString().replaceFirst("\\.claim$", "");
+		var dot = name.lastIndexOf('.');
+		var generation = Integer.parseInt(name.substring(dot + 1));
+		return claimFile.resolveSibling("%s.%d.claim".formatted(name.substring(0, dot), generation + 1));
+	}
+}